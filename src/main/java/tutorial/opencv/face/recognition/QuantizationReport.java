@@ -0,0 +1,120 @@
+package tutorial.opencv.face.recognition;
+
+/**
+ * Outcome of running the test images through both the full precision recognizer and a
+ * {@link QuantizedGallery}, so the accuracy cost of a precision can be weighed against the
+ * memory it saves.
+ *
+ * Sizes are reported twice: for the gallery alone (projections and labels, the part that grows
+ * with every enrolled face) and for the whole model, which also includes the mean face and the
+ * eigenvectors needed to project a query.
+ */
+public class QuantizationReport {
+
+    private final QuantizedGallery.Precision precision;
+    private final int testImages;
+    private final int fullPrecisionCorrect;
+    private final int quantizedCorrect;
+    private final int agreements;
+    private final long fullPrecisionGalleryBytes;
+    private final long quantizedGalleryBytes;
+    private final long fullPrecisionModelBytes;
+    private final long quantizedModelBytes;
+    private final long fullPrecisionScanNanos;
+    private final long quantizedScanNanos;
+
+    public QuantizationReport(QuantizedGallery.Precision precision, int testImages, int fullPrecisionCorrect,
+                              int quantizedCorrect, int agreements,
+                              long fullPrecisionGalleryBytes, long quantizedGalleryBytes,
+                              long fullPrecisionModelBytes, long quantizedModelBytes,
+                              long fullPrecisionScanNanos, long quantizedScanNanos) {
+        this.precision = precision;
+        this.testImages = testImages;
+        this.fullPrecisionCorrect = fullPrecisionCorrect;
+        this.quantizedCorrect = quantizedCorrect;
+        this.agreements = agreements;
+        this.fullPrecisionGalleryBytes = fullPrecisionGalleryBytes;
+        this.quantizedGalleryBytes = quantizedGalleryBytes;
+        this.fullPrecisionModelBytes = fullPrecisionModelBytes;
+        this.quantizedModelBytes = quantizedModelBytes;
+        this.fullPrecisionScanNanos = fullPrecisionScanNanos;
+        this.quantizedScanNanos = quantizedScanNanos;
+    }
+
+    public QuantizedGallery.Precision getPrecision() {
+        return precision;
+    }
+
+    public int getTestImages() {
+        return testImages;
+    }
+
+    public double getFullPrecisionAccuracy() {
+        return ratio(fullPrecisionCorrect, testImages);
+    }
+
+    public double getQuantizedAccuracy() {
+        return ratio(quantizedCorrect, testImages);
+    }
+
+    /** Accuracy lost by quantizing; negative if the quantized gallery happened to do better. */
+    public double getAccuracyLoss() {
+        return getFullPrecisionAccuracy() - getQuantizedAccuracy();
+    }
+
+    /** Share of test images for which both galleries predicted the same label. */
+    public double getAgreement() {
+        return ratio(agreements, testImages);
+    }
+
+    /** How much smaller the quantized projections are than OpenCV's double projections. */
+    public double getGalleryCompressionRatio() {
+        return quantizedGalleryBytes == 0 ? 0 : (double) fullPrecisionGalleryBytes / quantizedGalleryBytes;
+    }
+
+    /** How much smaller the whole quantized gallery is than the recognizer it replaces. */
+    public double getModelCompressionRatio() {
+        return quantizedModelBytes == 0 ? 0 : (double) fullPrecisionModelBytes / quantizedModelBytes;
+    }
+
+    public long getFullPrecisionGalleryBytes() {
+        return fullPrecisionGalleryBytes;
+    }
+
+    public long getQuantizedGalleryBytes() {
+        return quantizedGalleryBytes;
+    }
+
+    public long getFullPrecisionModelBytes() {
+        return fullPrecisionModelBytes;
+    }
+
+    public long getQuantizedModelBytes() {
+        return quantizedModelBytes;
+    }
+
+    /** Time to scan the double projections once per test image, summed over all test images. */
+    public long getFullPrecisionScanNanos() {
+        return fullPrecisionScanNanos;
+    }
+
+    /** Time to scan the quantized gallery once per test image, summed over all test images. */
+    public long getQuantizedScanNanos() {
+        return quantizedScanNanos;
+    }
+
+    private static double ratio(int count, int total) {
+        return total == 0 ? 0 : (double) count / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: accuracy %.1f%% (full precision %.1f%%, loss %.1f%%), agreement %.1f%%, "
+                        + "gallery %d -> %d bytes (%.1fx smaller), model %d -> %d bytes (%.1fx smaller), "
+                        + "scan %d ns -> %d ns over %d test images",
+                precision, 100 * getQuantizedAccuracy(), 100 * getFullPrecisionAccuracy(), 100 * getAccuracyLoss(),
+                100 * getAgreement(), fullPrecisionGalleryBytes, quantizedGalleryBytes, getGalleryCompressionRatio(),
+                fullPrecisionModelBytes, quantizedModelBytes, getModelCompressionRatio(),
+                fullPrecisionScanNanos, quantizedScanNanos, testImages);
+    }
+}
@@ -0,0 +1,377 @@
+package tutorial.opencv.face.recognition;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.face.BasicFaceRecognizer;
+
+import java.util.List;
+
+/**
+ * Reduced-precision copy of the projected training vectors of an Eigen/Fisher face recognizer.
+ *
+ * OpenCV keeps every projection as a row of 64-bit doubles, so the gallery grows by
+ * 8 bytes per dimension per enrolled face. This class stores the same vectors either as
+ * int8 (roughly 8x smaller) or as fp16 (roughly 4x smaller), each dimension scaled by its
+ * own factor so that small and large eigen components keep the same relative precision.
+ *
+ * Nearest neighbour search runs directly on the quantized codes: the query stays in float,
+ * is divided by the per-dimension scale once, and is then compared against the codes with
+ * a weighted squared L2 distance, i.e. the gallery is never expanded back to doubles.
+ *
+ * A gallery built from a recognizer also keeps the mean face and the eigenvectors (as fp32) so
+ * it can project new faces on its own. Once it is built the recognizer, with its double
+ * projections, eigenvectors and eigenvalues, is no longer needed and can be released. Note that
+ * the eigenvectors (pixels x components) usually outweigh the gallery itself on small galleries;
+ * the 4-8x saving applies to the part that grows with every enrolled face.
+ */
+public class QuantizedGallery {
+
+    public enum Precision {
+        /** Signed 8-bit codes, {@code value ~= code * scale}. */
+        INT8,
+        /** IEEE half floats, {@code value ~= half * scale}. */
+        FP16
+    }
+
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+    static {
+        for (int h = 0; h < HALF_TO_FLOAT.length; h++) {
+            HALF_TO_FLOAT[h] = halfToFloat(h);
+        }
+    }
+
+    private final Precision precision;
+    private final int size;
+    private final int dimensions;
+    private final int[] labels;
+    private final float[] scales;
+    private final float[] weights;
+    private final byte[] int8Codes;
+    private final short[] fp16Codes;
+    private final float[] mean;
+    private final float[] eigenVectors;
+    private final double threshold;
+
+    private QuantizedGallery(Precision precision, int size, int dimensions, int[] labels, float[] scales,
+                             byte[] int8Codes, short[] fp16Codes, float[] mean, float[] eigenVectors,
+                             double threshold) {
+        this.precision = precision;
+        this.size = size;
+        this.dimensions = dimensions;
+        this.labels = labels;
+        this.scales = scales;
+        this.weights = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            weights[d] = scales[d] * scales[d];
+        }
+        this.int8Codes = int8Codes;
+        this.fp16Codes = fp16Codes;
+        this.mean = mean;
+        this.eigenVectors = eigenVectors;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Quantizes the given projections (one row per training sample) with per-dimension scaling.
+     * The resulting gallery can only search queries that are already projected.
+     */
+    public static QuantizedGallery build(double[][] projections, int[] labels, Precision precision) {
+        return build(projections, labels, precision, null, null, Double.MAX_VALUE);
+    }
+
+    /**
+     * Quantizes the given projections and keeps the projection model, {@code mean} (one value per
+     * pixel) and {@code eigenVectors} (pixels x dimensions, row-major), so faces can be projected.
+     */
+    static QuantizedGallery build(double[][] projections, int[] labels, Precision precision,
+                                  float[] mean, float[] eigenVectors, double threshold) {
+        if (projections.length == 0 || projections.length != labels.length) {
+            throw new IllegalArgumentException("Expected one label per projection, got "
+                    + projections.length + " projections and " + labels.length + " labels");
+        }
+        int size = projections.length;
+        int dimensions = projections[0].length;
+
+        if (mean != null && (long) mean.length * dimensions != eigenVectors.length) {
+            throw new IllegalArgumentException("Expected " + mean.length + " x " + dimensions
+                    + " eigenvector values, got " + eigenVectors.length);
+        }
+
+        float[] maxAbs = new float[dimensions];
+        for (double[] row : projections) {
+            if (row.length != dimensions) {
+                throw new IllegalArgumentException("All projections must have " + dimensions + " dimensions");
+            }
+            for (int d = 0; d < dimensions; d++) {
+                maxAbs[d] = Math.max(maxAbs[d], (float) Math.abs(row[d]));
+            }
+        }
+
+        float[] scales = new float[dimensions];
+        float range = precision == Precision.INT8 ? Byte.MAX_VALUE : 1f;
+        for (int d = 0; d < dimensions; d++) {
+            scales[d] = maxAbs[d] == 0f ? 1f : maxAbs[d] / range;
+        }
+
+        byte[] int8Codes = null;
+        short[] fp16Codes = null;
+        if (precision == Precision.INT8) {
+            int8Codes = new byte[size * dimensions];
+            for (int i = 0; i < size; i++) {
+                for (int d = 0; d < dimensions; d++) {
+                    long code = Math.round(projections[i][d] / scales[d]);
+                    int8Codes[i * dimensions + d] = (byte) Math.max(-Byte.MAX_VALUE, Math.min(Byte.MAX_VALUE, code));
+                }
+            }
+        } else {
+            fp16Codes = new short[size * dimensions];
+            for (int i = 0; i < size; i++) {
+                for (int d = 0; d < dimensions; d++) {
+                    fp16Codes[i * dimensions + d] = floatToHalf((float) (projections[i][d] / scales[d]));
+                }
+            }
+        }
+
+        return new QuantizedGallery(precision, size, dimensions, labels.clone(), scales, int8Codes, fp16Codes,
+                mean, eigenVectors, threshold);
+    }
+
+    /**
+     * Quantizes the projections an already trained {@link BasicFaceRecognizer} holds and copies its
+     * mean and eigenvectors, so the recognizer itself can be released afterwards.
+     */
+    public static QuantizedGallery fromRecognizer(BasicFaceRecognizer faceRecognizer, Precision precision) {
+        List<Mat> projections = faceRecognizer.getProjections();
+        Mat labelsMat = faceRecognizer.getLabels();
+
+        double[][] rows = new double[projections.size()][];
+        int[] labels = new int[projections.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = toDoubles(projections.get(i));
+            labels[i] = (int) labelsMat.get(i, 0)[0];
+        }
+
+        float[] mean = toFloats(faceRecognizer.getMean());
+        float[] eigenVectors = toFloats(faceRecognizer.getEigenVectors());
+        return build(rows, labels, precision, mean, eigenVectors, faceRecognizer.getThreshold());
+    }
+
+    /**
+     * Projects a face image into the gallery's subspace, the same way OpenCV does before comparing
+     * it with the stored projections: {@code (image - mean) * eigenVectors}.
+     */
+    public float[] project(Mat image) {
+        Mat sample = new Mat();
+        image.reshape(1, 1).convertTo(sample, CvType.CV_32F);
+        float[] pixels = new float[(int) sample.total()];
+        sample.get(0, 0, pixels);
+        return project(pixels);
+    }
+
+    float[] project(float[] pixels) {
+        if (mean == null) {
+            throw new IllegalStateException("This gallery was built without a projection model");
+        }
+        if (pixels.length != mean.length) {
+            throw new IllegalArgumentException("Expected an image with " + mean.length
+                    + " pixels, got " + pixels.length);
+        }
+
+        double[] sums = new double[dimensions];
+        for (int p = 0; p < pixels.length; p++) {
+            float centered = pixels[p] - mean[p];
+            int row = p * dimensions;
+            for (int d = 0; d < dimensions; d++) {
+                sums[d] += centered * eigenVectors[row + d];
+            }
+        }
+
+        float[] query = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            query[d] = (float) sums[d];
+        }
+        return query;
+    }
+
+    /**
+     * Projects the image and returns the index of the closest gallery entry within the threshold
+     * of the recognizer the gallery was built from, or -1 if there is none.
+     */
+    public int nearest(Mat image) {
+        return nearest(project(image));
+    }
+
+    /**
+     * Returns the index of the gallery entry closest to the query (L2), or -1 if the query is
+     * further than {@code threshold} from every entry.
+     */
+    public int nearest(float[] query, double threshold) {
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("Expected a query with " + dimensions
+                    + " dimensions, got " + query.length);
+        }
+
+        float[] scaled = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            scaled[d] = query[d] / scales[d];
+        }
+
+        int best = -1;
+        double bestDistance = threshold * threshold;
+        for (int i = 0; i < size; i++) {
+            double distance = precision == Precision.INT8
+                    ? int8Distance(scaled, i * dimensions, bestDistance)
+                    : fp16Distance(scaled, i * dimensions, bestDistance);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the index of the gallery entry closest to an already projected query, within the
+     * threshold of the recognizer the gallery was built from, or -1 if there is none.
+     */
+    public int nearest(float[] query) {
+        return nearest(query, threshold);
+    }
+
+    private double int8Distance(float[] scaled, int offset, double bound) {
+        double sum = 0;
+        for (int d = 0; d < dimensions; d++) {
+            float diff = scaled[d] - int8Codes[offset + d];
+            sum += weights[d] * diff * diff;
+            if (sum >= bound) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private double fp16Distance(float[] scaled, int offset, double bound) {
+        double sum = 0;
+        for (int d = 0; d < dimensions; d++) {
+            float diff = scaled[d] - HALF_TO_FLOAT[fp16Codes[offset + d] & 0xffff];
+            sum += weights[d] * diff * diff;
+            if (sum >= bound) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    public int labelAt(int index) {
+        return labels[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    public Precision precision() {
+        return precision;
+    }
+
+    /** Largest distance at which an entry still counts as a match. */
+    public double threshold() {
+        return threshold;
+    }
+
+    /** Number of pixels the projection model expects, or 0 if the gallery has none. */
+    public int pixels() {
+        return mean == null ? 0 : mean.length;
+    }
+
+    /** Bytes used by the quantized codes, the per-dimension scales and the labels. */
+    public long gallerySizeInBytes() {
+        long codeBytes = precision == Precision.INT8 ? 1 : 2;
+        return (long) size * dimensions * codeBytes + (long) dimensions * Float.BYTES + (long) size * Integer.BYTES;
+    }
+
+    /** Bytes OpenCV uses for the same projections (doubles) and labels. */
+    public long fullPrecisionGallerySizeInBytes() {
+        return (long) size * dimensions * Double.BYTES + (long) size * Integer.BYTES;
+    }
+
+    /** Everything this gallery holds: the gallery plus the fp32 mean and eigenvectors. */
+    public long sizeInBytes() {
+        return gallerySizeInBytes() + (long) pixels() * (dimensions + 1) * Float.BYTES;
+    }
+
+    /**
+     * Everything a trained Eigen/Fisher recognizer holds for the same model: the gallery plus the
+     * mean, eigenvectors and eigenvalues, all as doubles. This is what releasing it frees.
+     */
+    public long fullPrecisionSizeInBytes() {
+        return fullPrecisionGallerySizeInBytes() + ((long) pixels() * (dimensions + 1) + dimensions) * Double.BYTES;
+    }
+
+    private static double[] toDoubles(Mat mat) {
+        Mat converted = new Mat();
+        mat.reshape(1, 1).convertTo(converted, CvType.CV_64F);
+        double[] values = new double[(int) converted.total()];
+        converted.get(0, 0, values);
+        return values;
+    }
+
+    private static float[] toFloats(Mat mat) {
+        Mat converted = new Mat();
+        mat.reshape(1, 1).convertTo(converted, CvType.CV_32F);
+        float[] values = new float[(int) converted.total()];
+        converted.get(0, 0, values);
+        return values;
+    }
+
+    static short floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int rounded = (bits & 0x7fffffff) + 0x1000;
+
+        if (rounded >= 0x47800000) {
+            if ((bits & 0x7fffffff) >= 0x47800000) {
+                // already Inf/NaN, or too large for a half float
+                if (rounded < 0x7f800000) {
+                    return (short) (sign | 0x7c00);
+                }
+                return (short) (sign | 0x7c00 | ((bits & 0x007fffff) >>> 13));
+            }
+            return (short) (sign | 0x7bff);
+        }
+        if (rounded >= 0x38800000) {
+            return (short) (sign | ((rounded - 0x38000000) >>> 13));
+        }
+        if (rounded < 0x33000000) {
+            return (short) sign;
+        }
+        // subnormal half float
+        int exponent = (bits & 0x7fffffff) >>> 23;
+        return (short) (sign | ((((bits & 0x7fffff) | 0x800000) + (0x800000 >>> (exponent - 102))) >>> (126 - exponent)));
+    }
+
+    static float halfToFloat(int half) {
+        int mantissa = half & 0x03ff;
+        int exponent = half & 0x7c00;
+
+        if (exponent == 0x7c00) {
+            exponent = 0x3fc00;
+        } else if (exponent != 0) {
+            exponent += 0x1c000;
+        } else if (mantissa != 0) {
+            // normalise a subnormal half float
+            exponent = 0x1c400;
+            do {
+                mantissa <<= 1;
+                exponent -= 0x400;
+            } while ((mantissa & 0x400) == 0);
+            mantissa &= 0x3ff;
+        }
+        return Float.intBitsToFloat((half & 0x8000) << 16 | (exponent | mantissa) << 13);
+    }
+}
@@ -5,6 +5,7 @@ import org.bytedeco.opencv.opencv_java;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
 import org.opencv.core.Scalar;
+import org.opencv.face.BasicFaceRecognizer;
 import org.opencv.face.EigenFaceRecognizer;
 import org.opencv.face.FaceRecognizer;
 import org.opencv.imgcodecs.Imgcodecs;
@@ -17,7 +18,9 @@ import java.io.FilenameFilter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.opencv.core.CvType.CV_32SC1;
@@ -52,6 +55,8 @@ import static org.opencv.imgcodecs.Imgcodecs.imread;
 
 public class RealTimeFaceRecognition {
 
+    static final int SCAN_REPEATS = 1000;
+
     static final FilenameFilter IMG_FILTER = (dir, name) -> {
         name = name.toLowerCase();
         return name.endsWith(".jpg") || name.endsWith(".pgm") || name.endsWith(".png");
@@ -59,6 +64,7 @@ public class RealTimeFaceRecognition {
 
     Map<Integer, Mat> images = new HashMap<>();
     Map<Integer, String> personNames = new HashMap<>();
+    Map<Integer, String> labelNames = new HashMap<>();
 
     static {
         // magic command - it solves any .dll not found issue
@@ -117,6 +123,177 @@ public class RealTimeFaceRecognition {
         return personNames.get(predictedLabel - 1);
     }
 
+    /**
+     * Trains the same images as {@link #trainFaceRecognizer()}, but spread by label over
+     * {@code shardCount} LBPH recognizers that are trained in parallel, either in this JVM or in
+     * one local worker process per shard.
+     */
+    public ShardedFaceRecognizer trainShardedFaceRecognizer(int shardCount, ShardedFaceRecognizer.Mode mode) {
+        Path trainingDir = Paths.get("src/main/resources/images/training").toAbsolutePath();
+        File[] imageFiles = new File(trainingDir.toString()).listFiles(IMG_FILTER);
+
+        int[] labels = new int[imageFiles.length];
+        for (int i = 0; i < imageFiles.length; i++) {
+            labels[i] = parseLabel(imageFiles[i].getName());
+            labelNames.put(labels[i], parseName(imageFiles[i].getName()));
+        }
+
+        ShardedFaceRecognizer shardedFaceRecognizer = new ShardedFaceRecognizer(shardCount, mode);
+        try {
+            shardedFaceRecognizer.train(Arrays.asList(imageFiles), labels);
+        } catch (RuntimeException e) {
+            shardedFaceRecognizer.close();
+            throw e;
+        }
+
+        return shardedFaceRecognizer;
+    }
+
+    public String predict(ShardedFaceRecognizer shardedFaceRecognizer, Mat testImage) {
+        ShardedFaceRecognizer.Prediction prediction = shardedFaceRecognizer.predict(testImage);
+        if (prediction == null) {
+            return null;
+        }
+
+        System.out.println("Predicted label: " + prediction.getLabel() + " (shard " + prediction.getShard() + ")");
+        return labelName(prediction.getLabel());
+    }
+
+    /**
+     * Builds an int8 or fp16 copy of the recognizer's projected training vectors, together with the
+     * mean and eigenvectors needed to project new faces. Only Eigen and Fisher recognizers keep
+     * projections; LBPH stores histograms and cannot be quantized this way.
+     */
+    public QuantizedGallery quantizeGallery(FaceRecognizer faceRecognizer, QuantizedGallery.Precision precision) {
+        return QuantizedGallery.fromRecognizer(basicFaceRecognizer(faceRecognizer), precision);
+    }
+
+    /**
+     * Predicts with the quantized gallery alone, so the recognizer it was built from does not
+     * have to be kept in memory.
+     */
+    public String predict(QuantizedGallery gallery, Mat testImage) {
+        int nearest = gallery.nearest(testImage);
+        if (nearest < 0) {
+            return null;
+        }
+
+        int label = gallery.labelAt(nearest);
+        System.out.println("Predicted label: " + label);
+        return labelName(label);
+    }
+
+    /**
+     * Looks up the person's name for a label. The names come from the training file names, so this
+     * also works for a gallery or recognizer that was trained by another instance.
+     */
+    String labelName(int label) {
+        if (!labelNames.containsKey(label)) {
+            Path trainingDir = Paths.get("src/main/resources/images/training").toAbsolutePath();
+            for (File imageFile : new File(trainingDir.toString()).listFiles(IMG_FILTER)) {
+                labelNames.put(parseLabel(imageFile.getName()), parseName(imageFile.getName()));
+            }
+        }
+        return labelNames.get(label);
+    }
+
+    /**
+     * Compares full precision and quantized predictions on every image in images/test, whose
+     * file names follow the same <label>-name_n.png convention as the training images. The
+     * reported timings compare a scan of the quantized gallery with a scan of the recognizer's
+     * double projections for the same projected query.
+     */
+    public QuantizationReport evaluateQuantization(FaceRecognizer faceRecognizer, QuantizedGallery gallery) {
+        BasicFaceRecognizer basicFaceRecognizer = basicFaceRecognizer(faceRecognizer);
+        int eigenVectors = basicFaceRecognizer.getEigenVectors().cols();
+        if (gallery.dimensions() != eigenVectors) {
+            throw new IllegalArgumentException("Gallery has " + gallery.dimensions()
+                    + " dimensions but the recognizer has " + eigenVectors + " eigenvectors");
+        }
+
+        List<Mat> projectionMats = basicFaceRecognizer.getProjections();
+        double[][] projections = new double[projectionMats.size()][];
+        for (int i = 0; i < projections.length; i++) {
+            projections[i] = new double[eigenVectors];
+            projectionMats.get(i).get(0, 0, projections[i]);
+        }
+
+        Path testDir = Paths.get("src/main/resources/images/test").toAbsolutePath();
+        File[] testFiles = new File(testDir.toString()).listFiles(IMG_FILTER);
+
+        int fullCorrect = 0;
+        int quantizedCorrect = 0;
+        int agreements = 0;
+        long fullNanos = 0;
+        long quantizedNanos = 0;
+
+        for (File testFile : testFiles) {
+            Mat testImage = imread(testFile.getAbsolutePath(), IMREAD_GRAYSCALE);
+            int expectedLabel = parseLabel(testFile.getName());
+
+            int[] label = new int[1];
+            double[] confidence = new double[1];
+            faceRecognizer.predict(testImage, label, confidence);
+
+            float[] query = gallery.project(testImage);
+            int nearest = gallery.nearest(query);
+            int quantizedLabel = nearest < 0 ? -1 : gallery.labelAt(nearest);
+
+            // a single scan of a small gallery is below the timer resolution, so repeat it
+            long start = System.nanoTime();
+            for (int i = 0; i < SCAN_REPEATS; i++) {
+                nearest(projections, query);
+            }
+            fullNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < SCAN_REPEATS; i++) {
+                gallery.nearest(query);
+            }
+            quantizedNanos += System.nanoTime() - start;
+
+            if (label[0] == expectedLabel) {
+                fullCorrect++;
+            }
+            if (quantizedLabel == expectedLabel) {
+                quantizedCorrect++;
+            }
+            if (quantizedLabel == label[0]) {
+                agreements++;
+            }
+        }
+
+        return new QuantizationReport(gallery.precision(), testFiles.length, fullCorrect, quantizedCorrect, agreements,
+                gallery.fullPrecisionGallerySizeInBytes(), gallery.gallerySizeInBytes(),
+                gallery.fullPrecisionSizeInBytes(), gallery.sizeInBytes(),
+                fullNanos / SCAN_REPEATS, quantizedNanos / SCAN_REPEATS);
+    }
+
+    /** Double precision nearest neighbour scan, the baseline the quantized scan is timed against. */
+    static int nearest(double[][] projections, float[] query) {
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < projections.length; i++) {
+            double distance = 0;
+            for (int d = 0; d < query.length && distance < bestDistance; d++) {
+                double diff = query[d] - projections[i][d];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static BasicFaceRecognizer basicFaceRecognizer(FaceRecognizer faceRecognizer) {
+        if (!(faceRecognizer instanceof BasicFaceRecognizer)) {
+            throw new IllegalArgumentException("Only Eigen/Fisher face recognizers can be quantized");
+        }
+        return (BasicFaceRecognizer) faceRecognizer;
+    }
+
     public static void main(String[] args) throws Exception {
 
 
@@ -165,6 +342,13 @@ public class RealTimeFaceRecognition {
         // predictedLabel-1 because images are counted from 1
         BufferedImage image = Mat2BufferedImage(images.get(predictedLabel-1));
         ImageIO.write(image, "png", new File(resultsDir + "\\" + personNames.get(predictedLabel-1) + ".png"));
+
+        RealTimeFaceRecognition recognition = new RealTimeFaceRecognition();
+        FaceRecognizer trained = recognition.trainFaceRecognizer();
+        for (QuantizedGallery.Precision precision : QuantizedGallery.Precision.values()) {
+            QuantizedGallery gallery = recognition.quantizeGallery(trained, precision);
+            System.out.println(recognition.evaluateQuantization(trained, gallery));
+        }
     }
 
     public static BufferedImage Mat2BufferedImage(Mat matrix)throws Exception {
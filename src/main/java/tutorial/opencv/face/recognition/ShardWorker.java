@@ -0,0 +1,177 @@
+package tutorial.opencv.face.recognition;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.opencv_java;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_GRAYSCALE;
+
+/**
+ * Entry point of a shard worker process started by {@link ShardedFaceRecognizer} in
+ * {@link ShardedFaceRecognizer.Mode#WORKER_PROCESSES} mode. It serves one in-process shard over
+ * a line based protocol on standard input and output. It first prints READY, then answers every
+ * "id request" line with one "id response" line:
+ *
+ * PREPARE n, followed by n lines "label TAB path"  -> OK
+ * COMMIT                                           -> OK
+ * ROLLBACK                                         -> OK
+ * DISCARD                                          -> OK
+ * ABORT                                            -> OK
+ * PREDICT base64-png                               -> "label confidence" or NONE
+ *
+ * PREPARE trains on a background thread and is answered when training is done, so responses can
+ * come out of order; PREDICT keeps being answered from the committed model in the meantime. Any
+ * failure is answered with "ERROR ExceptionType message". The worker exits when its input is closed.
+ */
+public class ShardWorker {
+
+    static final String READY = "READY";
+    static final String PREPARE = "PREPARE";
+    static final String COMMIT = "COMMIT";
+    static final String ROLLBACK = "ROLLBACK";
+    static final String DISCARD = "DISCARD";
+    static final String ABORT = "ABORT";
+    static final String PREDICT = "PREDICT";
+    static final String OK = "OK";
+    static final String NONE = "NONE";
+    static final String ERROR = "ERROR";
+
+    static {
+        // magic command - it solves any .dll not found issue
+        Loader.load(opencv_java.class);
+    }
+
+    public static void main(String[] args) throws IOException {
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        PrintWriter responses = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), true);
+        // keep anything else that prints from mixing with the responses
+        System.setOut(System.err);
+
+        ExecutorService training = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-worker-training");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ShardedFaceRecognizer.InProcessShard shard = new ShardedFaceRecognizer.InProcessShard();
+        responses.println(READY);
+
+        String request;
+        while ((request = requests.readLine()) != null) {
+            String[] parts = request.split(" ", 3);
+            String id = parts[0];
+            String command = parts.length > 1 ? parts[1] : "";
+            String argument = parts.length > 2 ? parts[2] : null;
+
+            List<String> body;
+            try {
+                body = readBody(command, argument, requests);
+            } catch (Exception e) {
+                respond(responses, id, error(e));
+                continue;
+            }
+
+            if (PREPARE.equals(command)) {
+                training.execute(() -> respond(responses, id, answer(command, argument, body, shard)));
+            } else {
+                respond(responses, id, answer(command, argument, body, shard));
+            }
+        }
+        training.shutdownNow();
+    }
+
+    private static void respond(PrintWriter responses, String id, String response) {
+        synchronized (responses) {
+            responses.println(id + " " + response);
+        }
+    }
+
+    private static String answer(String command, String argument, List<String> body,
+                                 ShardedFaceRecognizer.InProcessShard shard) {
+        try {
+            return handle(command, argument, body, shard);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    private static String error(Exception e) {
+        return ERROR + " " + e.getClass().getSimpleName() + " " + String.valueOf(e.getMessage()).replace('\n', ' ');
+    }
+
+    /**
+     * Reads the lines that follow a request, so the stream stays in sync even if the request fails.
+     */
+    static List<String> readBody(String command, String argument, BufferedReader requests) throws IOException {
+        if (!PREPARE.equals(command)) {
+            return Collections.emptyList();
+        }
+        int count = Integer.parseInt(argument);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add(requests.readLine());
+        }
+        return lines;
+    }
+
+    static String handle(String command, String argument, List<String> body,
+                         ShardedFaceRecognizer.InProcessShard shard) {
+        switch (command) {
+            case PREPARE:
+                shard.prepare(parseIdentities(body));
+                return OK;
+            case COMMIT:
+                shard.commit();
+                return OK;
+            case ROLLBACK:
+                shard.rollback();
+                return OK;
+            case DISCARD:
+                shard.discardPrevious();
+                return OK;
+            case ABORT:
+                shard.abort();
+                return OK;
+            case PREDICT:
+                byte[] png = Base64.getDecoder().decode(argument);
+                Mat image = Imgcodecs.imdecode(new MatOfByte(png), IMREAD_GRAYSCALE);
+                if (image.empty()) {
+                    throw new IllegalArgumentException("Could not decode the query image");
+                }
+                ShardedFaceRecognizer.Prediction prediction = shard.predict(image, null, 0);
+                return prediction == null ? NONE : prediction.getLabel() + " " + prediction.getConfidence();
+            default:
+                throw new IllegalArgumentException("Unknown request " + command);
+        }
+    }
+
+    static Map<Integer, List<File>> parseIdentities(List<String> lines) {
+        Map<Integer, List<File>> identities = new LinkedHashMap<>();
+        for (String line : lines) {
+            String[] fields = line.split("\t", 2);
+            identities.computeIfAbsent(Integer.parseInt(fields[0]), label -> new ArrayList<>())
+                    .add(new File(fields[1]));
+        }
+        return identities;
+    }
+}
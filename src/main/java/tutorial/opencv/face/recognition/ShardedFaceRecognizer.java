@@ -0,0 +1,776 @@
+package tutorial.opencv.face.recognition;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.face.FaceRecognizer;
+import org.opencv.face.LBPHFaceRecognizer;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_GRAYSCALE;
+
+/**
+ * Splits the gallery over several LBPH face recognizers ("shards") so that no single recognizer
+ * has to hold, or train on, every enrolled identity.
+ *
+ * Identities are assigned to a shard by label, and all images of a label always live in the same
+ * shard. Shards are trained in parallel, a query is sent to every shard in parallel and the
+ * prediction with the lowest distance wins. When the images of an identity change only the shard
+ * that owns it is retrained; every shard, including that one, keeps answering queries with its
+ * current model in the meantime.
+ *
+ * Shards are always LBPH: an LBPH distance compares the histogram of the query with the histogram
+ * of one stored image and does not depend on the other images a shard was trained on, so the best
+ * match over all shards is exactly the match a single LBPH recognizer would return. Eigen and
+ * Fisher recognizers learn a subspace from their own training images, which makes distances from
+ * different shards incomparable.
+ *
+ * In {@link Mode#WORKER_PROCESSES} mode every shard runs in its own local JVM ({@link ShardWorker}),
+ * so the histograms are spread over several processes instead of one heap. Shards only keep the
+ * paths of their training images and read them again when they retrain. A worker that dies is
+ * restarted with the identities it last committed.
+ *
+ * Training is two-phase: every affected shard first trains a new model next to the one it is
+ * serving, and the new models and identities are only put in place once all of them succeeded.
+ * If switching one shard fails, the shards that already switched are rolled back.
+ */
+public class ShardedFaceRecognizer implements AutoCloseable {
+
+    public enum Mode {
+        /** All shards in this JVM, trained and queried on a thread pool. */
+        IN_PROCESS,
+        /** One local worker JVM per shard, talking over its standard input and output. */
+        WORKER_PROCESSES
+    }
+
+    private final Mode mode;
+    private final Shard[] shards;
+    private final List<Map<Integer, List<File>>> identities = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "face-recognizer-shard");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Worker processes are started with the class path of this JVM, see
+     * {@link #ShardedFaceRecognizer(int, Mode, String)} when that is not the project class path.
+     */
+    public ShardedFaceRecognizer(int shardCount, Mode mode) {
+        this(shardCount, mode, System.getProperty("java.class.path"));
+    }
+
+    /**
+     * @param workerClassPath class path for the worker processes; it must contain this project's
+     *                        classes and JavaCV. Ignored in {@link Mode#IN_PROCESS} mode.
+     */
+    public ShardedFaceRecognizer(int shardCount, Mode mode, String workerClassPath) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is required, got " + shardCount);
+        }
+        this.mode = mode;
+        this.shards = new Shard[shardCount];
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            int shardIndex = i;
+            // workers are started in parallel, each one spends a few seconds loading OpenCV
+            tasks.add(() -> {
+                shards[shardIndex] = mode == Mode.IN_PROCESS
+                        ? new InProcessShard() : new WorkerProcessShard(shardIndex, workerClassPath);
+                return null;
+            });
+            identities.add(new LinkedHashMap<>());
+        }
+
+        try {
+            invokeAll(tasks);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /** Only for tests that need to control how individual shards behave. */
+    ShardedFaceRecognizer(Shard... shards) {
+        this.mode = Mode.IN_PROCESS;
+        this.shards = shards;
+        for (int i = 0; i < shards.length; i++) {
+            identities.add(new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Partitions the images by label and trains every shard in parallel, replacing any
+     * previously trained identities. If any shard fails, no shard changes.
+     */
+    public synchronized void train(List<File> imageFiles, int[] labels) {
+        if (imageFiles.size() != labels.length) {
+            throw new IllegalArgumentException("Expected one label per image, got "
+                    + imageFiles.size() + " images and " + labels.length + " labels");
+        }
+
+        List<Map<Integer, List<File>>> partitions = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            partitions.add(new LinkedHashMap<>());
+        }
+        for (int i = 0; i < labels.length; i++) {
+            partitions.get(shardOf(labels[i]))
+                    .computeIfAbsent(labels[i], label -> new ArrayList<>())
+                    .add(imageFiles.get(i));
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            Map<Integer, List<File>> partition = partitions.get(i);
+            tasks.add(() -> {
+                shard.prepare(partition);
+                return null;
+            });
+        }
+
+        try {
+            invokeAll(tasks);
+        } catch (RuntimeException e) {
+            for (Shard shard : shards) {
+                abort(shard, e);
+            }
+            throw e;
+        }
+
+        int committed = 0;
+        try {
+            for (; committed < shards.length; committed++) {
+                shards[committed].commit();
+            }
+        } catch (RuntimeException e) {
+            for (int i = 0; i < committed; i++) {
+                rollback(shards[i], e);
+            }
+            for (int i = committed; i < shards.length; i++) {
+                abort(shards[i], e);
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].discardPrevious();
+            identities.set(i, partitions.get(i));
+        }
+    }
+
+    /**
+     * Adds or replaces the images of one identity and retrains only the shard that owns it.
+     */
+    public synchronized void update(int label, List<File> imageFiles) {
+        if (imageFiles.isEmpty()) {
+            throw new IllegalArgumentException("No images given for label " + label);
+        }
+        retrain(label, new ArrayList<>(imageFiles));
+    }
+
+    /**
+     * Removes an identity and retrains only the shard that owned it.
+     */
+    public synchronized void remove(int label) {
+        retrain(label, null);
+    }
+
+    private void retrain(int label, List<File> imageFiles) {
+        int shardIndex = shardOf(label);
+        Map<Integer, List<File>> changed = new LinkedHashMap<>(identities.get(shardIndex));
+        if (imageFiles == null) {
+            changed.remove(label);
+        } else {
+            changed.put(label, imageFiles);
+        }
+
+        Shard shard = shards[shardIndex];
+        try {
+            shard.prepare(changed);
+            shard.commit();
+        } catch (RuntimeException e) {
+            abort(shard, e);
+            throw e;
+        }
+        shard.discardPrevious();
+        identities.set(shardIndex, changed);
+    }
+
+    private static void abort(Shard shard, RuntimeException cause) {
+        try {
+            shard.abort();
+        } catch (RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    private static void rollback(Shard shard, RuntimeException cause) {
+        try {
+            shard.rollback();
+        } catch (RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Sends the image to every trained shard and returns the closest match, or {@code null}
+     * if no shard has been trained yet or none found a match within its threshold.
+     */
+    public Prediction predict(Mat image) {
+        // encoded once here rather than once per worker
+        String png = mode == Mode.WORKER_PROCESSES ? encode(image) : null;
+
+        List<Callable<Prediction>> tasks = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            int shardIndex = i;
+            tasks.add(() -> shard.predict(image, png, shardIndex));
+        }
+
+        Prediction best = null;
+        for (Prediction prediction : invokeAll(tasks)) {
+            if (prediction != null && (best == null || prediction.getConfidence() < best.getConfidence())) {
+                best = prediction;
+            }
+        }
+        return best;
+    }
+
+    private static String encode(Mat image) {
+        MatOfByte png = new MatOfByte();
+        Imgcodecs.imencode(".png", image, png);
+        return Base64.getEncoder().encodeToString(png.toArray());
+    }
+
+    int shardOf(int label) {
+        return Math.floorMod(Integer.hashCode(label), shards.length);
+    }
+
+    Shard shard(int shard) {
+        return shards[shard];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /** Number of identities currently served by the given shard. */
+    public synchronized int getIdentityCount(int shard) {
+        return identities.get(shard).size();
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("A shard failed", e.getCause());
+        }
+    }
+
+    public static class Prediction {
+
+        private final int label;
+        private final double confidence;
+        private final int shard;
+
+        Prediction(int label, double confidence, int shard) {
+            this.label = label;
+            this.confidence = confidence;
+            this.shard = shard;
+        }
+
+        public int getLabel() {
+            return label;
+        }
+
+        /** LBPH histogram distance; lower is a better match. */
+        public double getConfidence() {
+            return confidence;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+    }
+
+    /**
+     * One part of the gallery. {@link #prepare} trains a new model without serving it,
+     * {@link #commit} starts serving it and {@link #abort} throws it away. After a commit the
+     * previous model is kept until {@link #discardPrevious}, so {@link #rollback} can restore it.
+     */
+    interface Shard extends AutoCloseable {
+
+        void prepare(Map<Integer, List<File>> identities);
+
+        void commit();
+
+        void rollback();
+
+        void discardPrevious();
+
+        void abort();
+
+        /**
+         * @param png the image as base64 encoded PNG, for shards that have to send it elsewhere
+         */
+        Prediction predict(Mat image, String png, int shardIndex);
+
+        @Override
+        void close();
+    }
+
+    /**
+     * A shard living in this JVM. The model being served is swapped only on commit, so queries
+     * keep using the previous model while a new one is trained.
+     */
+    static class InProcessShard implements Shard {
+
+        private volatile FaceRecognizer recognizer;
+        private FaceRecognizer previous;
+        private FaceRecognizer prepared;
+        private boolean hasPrepared;
+
+        @Override
+        public void prepare(Map<Integer, List<File>> identities) {
+            synchronized (this) {
+                prepared = null;
+                hasPrepared = false;
+            }
+            // trained outside the lock, queries only read the committed model
+            FaceRecognizer trained = train(identities);
+            synchronized (this) {
+                prepared = trained;
+                hasPrepared = true;
+            }
+        }
+
+        @Override
+        public synchronized void commit() {
+            if (!hasPrepared) {
+                throw new IllegalStateException("Nothing prepared to commit");
+            }
+            previous = recognizer;
+            recognizer = prepared;
+            prepared = null;
+            hasPrepared = false;
+        }
+
+        @Override
+        public synchronized void rollback() {
+            recognizer = previous;
+            previous = null;
+        }
+
+        @Override
+        public synchronized void discardPrevious() {
+            previous = null;
+        }
+
+        @Override
+        public synchronized void abort() {
+            prepared = null;
+            hasPrepared = false;
+        }
+
+        @Override
+        public Prediction predict(Mat image, String png, int shardIndex) {
+            FaceRecognizer current = recognizer;
+            if (current == null) {
+                return null;
+            }
+
+            int[] label = new int[1];
+            double[] confidence = new double[1];
+            current.predict(image, label, confidence);
+            return label[0] < 0 ? null : new Prediction(label[0], confidence[0], shardIndex);
+        }
+
+        FaceRecognizer recognizer() {
+            return recognizer;
+        }
+
+        @Override
+        public synchronized void close() {
+            recognizer = null;
+            previous = null;
+            prepared = null;
+        }
+
+        private static FaceRecognizer train(Map<Integer, List<File>> identities) {
+            if (identities.isEmpty()) {
+                return null;
+            }
+
+            List<Mat> images = new ArrayList<>();
+            List<Integer> labels = new ArrayList<>();
+            for (Map.Entry<Integer, List<File>> identity : identities.entrySet()) {
+                for (File imageFile : identity.getValue()) {
+                    Mat image = Imgcodecs.imread(imageFile.getAbsolutePath(), IMREAD_GRAYSCALE);
+                    if (image.empty()) {
+                        throw new IllegalArgumentException("Could not read training image " + imageFile);
+                    }
+                    images.add(image);
+                    labels.add(identity.getKey());
+                }
+            }
+
+            MatOfInt labelsMat = new MatOfInt();
+            labelsMat.fromList(labels);
+
+            FaceRecognizer trained = LBPHFaceRecognizer.create();
+            trained.train(images, labelsMat);
+            return trained;
+        }
+    }
+
+    /**
+     * A shard served by a {@link ShardWorker} in a separate local JVM. Every request carries an id
+     * and is answered independently, so queries are answered from the committed model while the
+     * worker trains. If the worker dies it is started again with the identities it last committed,
+     * and the request that noticed it fails with a {@link WorkerRestartedException}.
+     */
+    static class WorkerProcessShard implements Shard {
+
+        private final int index;
+        private final String classPath;
+        private final Object restartLock = new Object();
+        private volatile Worker worker;
+
+        // only changed from the (synchronized) ShardedFaceRecognizer methods
+        private volatile Map<Integer, List<File>> prepared;
+        private volatile Map<Integer, List<File>> committed = Collections.emptyMap();
+        private volatile Map<Integer, List<File>> previous;
+
+        WorkerProcessShard(int index, String classPath) {
+            this.index = index;
+            this.classPath = classPath;
+            this.worker = new Worker(index, classPath);
+        }
+
+        @Override
+        public void prepare(Map<Integer, List<File>> identities) {
+            prepared = null;
+            call(ShardWorker.PREPARE, String.valueOf(countImages(identities)), identityLines(identities));
+            prepared = identities;
+        }
+
+        @Override
+        public void commit() {
+            if (prepared == null) {
+                throw new IllegalStateException("Nothing prepared to commit on shard " + index);
+            }
+            try {
+                call(ShardWorker.COMMIT, null, null);
+            } catch (RuntimeException e) {
+                prepared = null;
+                throw e;
+            }
+            previous = committed;
+            committed = prepared;
+            prepared = null;
+        }
+
+        @Override
+        public void rollback() {
+            // updated first, so a restart below already comes back with the previous identities
+            committed = previous == null ? Collections.emptyMap() : previous;
+            previous = null;
+            try {
+                call(ShardWorker.ROLLBACK, null, null);
+            } catch (WorkerRestartedException e) {
+                // the restarted worker serves the previous identities already
+            }
+        }
+
+        @Override
+        public void discardPrevious() {
+            previous = null;
+            try {
+                call(ShardWorker.DISCARD, null, null);
+            } catch (RuntimeException e) {
+                // only frees memory; a worker that is not back up fails the next request instead
+            }
+        }
+
+        @Override
+        public void abort() {
+            prepared = null;
+            try {
+                call(ShardWorker.ABORT, null, null);
+            } catch (WorkerRestartedException e) {
+                // a restarted worker has nothing prepared
+            }
+        }
+
+        @Override
+        public Prediction predict(Mat image, String png, int shardIndex) {
+            String response;
+            try {
+                response = call(ShardWorker.PREDICT, png, null);
+            } catch (WorkerRestartedException e) {
+                response = call(ShardWorker.PREDICT, png, null);
+            }
+            if (ShardWorker.NONE.equals(response)) {
+                return null;
+            }
+
+            String[] parts = response.split(" ");
+            return new Prediction(Integer.parseInt(parts[0]), Double.parseDouble(parts[1]), shardIndex);
+        }
+
+        private String call(String command, String argument, List<String> body) {
+            Worker current = worker;
+            try {
+                return current.call(command, argument, body);
+            } catch (WorkerExitedException e) {
+                restart(current);
+                throw new WorkerRestartedException("Shard " + index + " worker exited and was restarted"
+                        + " with its last committed identities", e);
+            }
+        }
+
+        private void restart(Worker dead) {
+            synchronized (restartLock) {
+                if (worker != dead) {
+                    return;
+                }
+                dead.close();
+                Worker restarted = new Worker(index, classPath);
+                Map<Integer, List<File>> identities = committed;
+                if (!identities.isEmpty()) {
+                    try {
+                        restarted.call(ShardWorker.PREPARE, String.valueOf(countImages(identities)),
+                                identityLines(identities));
+                        restarted.call(ShardWorker.COMMIT, null, null);
+                    } catch (RuntimeException e) {
+                        restarted.close();
+                        throw e;
+                    }
+                }
+                worker = restarted;
+            }
+        }
+
+        Process process() {
+            return worker.process;
+        }
+
+        /** Whether a PREPARE request has been sent to the worker and not answered yet. */
+        boolean isPreparing() {
+            return worker.pendingPrepares.get() > 0;
+        }
+
+        private static int countImages(Map<Integer, List<File>> identities) {
+            int count = 0;
+            for (List<File> imageFiles : identities.values()) {
+                count += imageFiles.size();
+            }
+            return count;
+        }
+
+        private static List<String> identityLines(Map<Integer, List<File>> identities) {
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<Integer, List<File>> identity : identities.entrySet()) {
+                for (File imageFile : identity.getValue()) {
+                    lines.add(identity.getKey() + "\t" + imageFile.getAbsolutePath());
+                }
+            }
+            return lines;
+        }
+
+        @Override
+        public void close() {
+            worker.close();
+        }
+    }
+
+    /**
+     * One worker process and the thread reading its responses. Requests are written under a lock
+     * that is only held while writing, and each caller waits for the response with its own id.
+     */
+    private static class Worker {
+
+        private final int index;
+        private final Process process;
+        private final PrintWriter requests;
+        private final BufferedReader responses;
+        private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+        private final AtomicLong nextId = new AtomicLong();
+        private final AtomicLong pendingPrepares = new AtomicLong();
+        private volatile boolean exited;
+
+        Worker(int index, String classPath) {
+            this.index = index;
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath, ShardWorker.class.getName());
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            try {
+                process = builder.start();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not start shard " + index + " worker", e);
+            }
+            requests = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            responses = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+            String handshake;
+            try {
+                handshake = responses.readLine();
+            } catch (IOException e) {
+                handshake = null;
+            }
+            if (!ShardWorker.READY.equals(handshake)) {
+                process.destroyForcibly();
+                throw new IllegalStateException("Shard " + index + " worker did not start (got " + handshake
+                        + "); its class path must contain this project's classes and JavaCV: " + classPath);
+            }
+
+            Thread reader = new Thread(this::readResponses, "face-recognizer-shard-" + index + "-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        String call(String command, String argument, List<String> body) {
+            long id = nextId.incrementAndGet();
+            CompletableFuture<String> response = new CompletableFuture<>();
+            pending.put(id, response);
+            if (exited) {
+                pending.remove(id);
+                throw new WorkerExitedException("Shard " + index + " worker exited");
+            }
+
+            boolean prepare = ShardWorker.PREPARE.equals(command);
+            if (prepare) {
+                pendingPrepares.incrementAndGet();
+            }
+            try {
+                synchronized (requests) {
+                    requests.println(id + " " + command + (argument == null ? "" : " " + argument));
+                    if (body != null) {
+                        for (String line : body) {
+                            requests.println(line);
+                        }
+                    }
+                    requests.flush();
+                }
+                return unwrap(response.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for shard " + index, e);
+            } catch (ExecutionException e) {
+                throw (RuntimeException) e.getCause();
+            } finally {
+                pending.remove(id);
+                if (prepare) {
+                    pendingPrepares.decrementAndGet();
+                }
+            }
+        }
+
+        /** Turns an error response back into the exception type the worker threw. */
+        private String unwrap(String response) {
+            if (!response.startsWith(ShardWorker.ERROR + " ")) {
+                return response;
+            }
+            String[] parts = response.split(" ", 3);
+            String message = "Shard " + index + ": " + (parts.length > 2 ? parts[2] : "");
+            if (IllegalArgumentException.class.getSimpleName().equals(parts[1])) {
+                throw new IllegalArgumentException(message);
+            }
+            throw new IllegalStateException(message);
+        }
+
+        private void readResponses() {
+            try {
+                String line;
+                while ((line = responses.readLine()) != null) {
+                    String[] parts = line.split(" ", 2);
+                    CompletableFuture<String> response = pending.get(Long.parseLong(parts[0]));
+                    if (response != null) {
+                        response.complete(parts.length > 1 ? parts[1] : "");
+                    }
+                }
+            } catch (IOException e) {
+                // treated like the worker exiting
+            }
+            exited = true;
+            for (CompletableFuture<String> response : pending.values()) {
+                response.completeExceptionally(new WorkerExitedException("Shard " + index + " worker exited"));
+            }
+        }
+
+        void close() {
+            requests.close();
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /** The worker process went away before answering. */
+    static class WorkerExitedException extends IllegalStateException {
+
+        WorkerExitedException(String message) {
+            super(message);
+        }
+    }
+
+    /** The worker process went away and has been started again with its last committed identities. */
+    static class WorkerRestartedException extends IllegalStateException {
+
+        WorkerRestartedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package tutorial.opencv.face.recognition;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for QuantizationReport.
+ */
+class QuantizationReportTest {
+
+    private final QuantizationReport report = new QuantizationReport(
+            QuantizedGallery.Precision.INT8, 4, 3, 2, 3, 800, 104, 10_800, 5_104, 2_000, 1_000);
+
+    @Test
+    void accuracies_areRatiosOfTestImages() {
+        assertEquals(0.75, report.getFullPrecisionAccuracy());
+        assertEquals(0.5, report.getQuantizedAccuracy());
+        assertEquals(0.25, report.getAccuracyLoss());
+        assertEquals(0.75, report.getAgreement());
+    }
+
+    @Test
+    void galleryCompressionRatio_comparesGallerySizes() {
+        assertEquals(800.0 / 104, report.getGalleryCompressionRatio());
+    }
+
+    @Test
+    void modelCompressionRatio_comparesWholeModels() {
+        assertEquals(10_800.0 / 5_104, report.getModelCompressionRatio());
+    }
+
+    @Test
+    void noTestImages_reportsZeroAccuracy() {
+        QuantizationReport empty = new QuantizationReport(QuantizedGallery.Precision.FP16, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        assertEquals(0, empty.getQuantizedAccuracy());
+        assertEquals(0, empty.getGalleryCompressionRatio());
+        assertEquals(0, empty.getModelCompressionRatio());
+    }
+
+    @Test
+    void toString_mentionsPrecisionAndAccuracy() {
+        String text = report.toString();
+        assertTrue(text.startsWith("INT8"));
+        assertTrue(text.contains("accuracy 50.0%"));
+        assertTrue(text.contains("scan 2000 ns -> 1000 ns"));
+    }
+}
@@ -0,0 +1,233 @@
+package tutorial.opencv.face.recognition;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for QuantizedGallery.
+ *
+ * Galleries are built from plain double arrays here, so none of these tests need the
+ * OpenCV native libraries.
+ */
+class QuantizedGalleryTest {
+
+    private static final double[][] PROJECTIONS = {
+            {1200.0, -3.5, 0.02},
+            {-800.0, 2.0, -0.01},
+            {10.0, 0.5, 0.015}
+    };
+    private static final int[] LABELS = {1, 2, 3};
+
+    // -----------------------------------------------------------------------
+    // build
+    // -----------------------------------------------------------------------
+
+    @Test
+    void build_mismatchedLabels_throws() {
+        assertThrows(IllegalArgumentException.class,
+                () -> QuantizedGallery.build(PROJECTIONS, new int[]{1, 2}, QuantizedGallery.Precision.INT8));
+    }
+
+    @Test
+    void build_emptyProjections_throws() {
+        assertThrows(IllegalArgumentException.class,
+                () -> QuantizedGallery.build(new double[0][], new int[0], QuantizedGallery.Precision.FP16));
+    }
+
+    @Test
+    void build_keepsSizeDimensionsAndLabels() {
+        QuantizedGallery gallery = QuantizedGallery.build(PROJECTIONS, LABELS, QuantizedGallery.Precision.INT8);
+        assertEquals(3, gallery.size());
+        assertEquals(3, gallery.dimensions());
+        assertEquals(2, gallery.labelAt(1));
+    }
+
+    // -----------------------------------------------------------------------
+    // gallerySizeInBytes / sizeInBytes
+    // -----------------------------------------------------------------------
+
+    @Test
+    void gallerySizeInBytes_int8IsAboutEightTimesSmaller() {
+        QuantizedGallery gallery = randomGallery(200, 64, QuantizedGallery.Precision.INT8, new Random(1));
+        double ratio = (double) gallery.fullPrecisionGallerySizeInBytes() / gallery.gallerySizeInBytes();
+        assertTrue(ratio > 7 && ratio <= 8, "ratio was " + ratio);
+    }
+
+    @Test
+    void gallerySizeInBytes_fp16IsAboutFourTimesSmaller() {
+        QuantizedGallery gallery = randomGallery(200, 64, QuantizedGallery.Precision.FP16, new Random(1));
+        double ratio = (double) gallery.fullPrecisionGallerySizeInBytes() / gallery.gallerySizeInBytes();
+        assertTrue(ratio > 3.5 && ratio <= 4, "ratio was " + ratio);
+    }
+
+    @Test
+    void sizeInBytes_countsProjectionModel() {
+        QuantizedGallery gallery = projectingGallery(QuantizedGallery.Precision.INT8);
+        // 2 pixels x (3 eigenvector columns + mean) as fp32, against the same plus 3 eigenvalues as doubles
+        assertEquals(gallery.gallerySizeInBytes() + 2 * 4 * 4, gallery.sizeInBytes());
+        assertEquals(gallery.fullPrecisionGallerySizeInBytes() + (2 * 4 + 3) * 8, gallery.fullPrecisionSizeInBytes());
+    }
+
+    // -----------------------------------------------------------------------
+    // project
+    // -----------------------------------------------------------------------
+
+    @Test
+    void project_subtractsMeanAndMultipliesByEigenvectors() {
+        QuantizedGallery gallery = projectingGallery(QuantizedGallery.Precision.FP16);
+        // (pixels - mean) = {1, 2}; eigenvectors rows {1, 0, 2} and {0, 1, -1}
+        assertArrayEquals(new float[]{1f, 2f, 0f}, gallery.project(new float[]{11f, 22f}));
+    }
+
+    @Test
+    void project_wrongPixelCount_throws() {
+        QuantizedGallery gallery = projectingGallery(QuantizedGallery.Precision.INT8);
+        assertThrows(IllegalArgumentException.class, () -> gallery.project(new float[]{1f, 2f, 3f}));
+    }
+
+    @Test
+    void project_withoutProjectionModel_throws() {
+        QuantizedGallery gallery = QuantizedGallery.build(PROJECTIONS, LABELS, QuantizedGallery.Precision.INT8);
+        assertThrows(IllegalStateException.class, () -> gallery.project(new float[]{1f, 2f}));
+    }
+
+    @Test
+    void build_eigenvectorsNotMatchingMean_throws() {
+        assertThrows(IllegalArgumentException.class, () -> QuantizedGallery.build(PROJECTIONS, LABELS,
+                QuantizedGallery.Precision.INT8, new float[]{10f, 20f}, new float[5], Double.MAX_VALUE));
+    }
+
+    // -----------------------------------------------------------------------
+    // nearest
+    // -----------------------------------------------------------------------
+
+    @Test
+    void nearest_int8_findsExactEntries() {
+        QuantizedGallery gallery = QuantizedGallery.build(PROJECTIONS, LABELS, QuantizedGallery.Precision.INT8);
+        for (int i = 0; i < PROJECTIONS.length; i++) {
+            assertEquals(i, gallery.nearest(toFloats(PROJECTIONS[i])));
+        }
+    }
+
+    @Test
+    void nearest_fp16_findsExactEntries() {
+        QuantizedGallery gallery = QuantizedGallery.build(PROJECTIONS, LABELS, QuantizedGallery.Precision.FP16);
+        for (int i = 0; i < PROJECTIONS.length; i++) {
+            assertEquals(i, gallery.nearest(toFloats(PROJECTIONS[i])));
+        }
+    }
+
+    @Test
+    void nearest_beyondThreshold_returnsMinusOne() {
+        QuantizedGallery gallery = QuantizedGallery.build(PROJECTIONS, LABELS, QuantizedGallery.Precision.INT8);
+        assertEquals(-1, gallery.nearest(new float[]{5000f, 0f, 0f}, 100));
+    }
+
+    @Test
+    void nearest_withoutThreshold_usesGalleryThreshold() {
+        QuantizedGallery gallery = QuantizedGallery.build(PROJECTIONS, LABELS, QuantizedGallery.Precision.INT8,
+                null, null, 100);
+        assertEquals(100, gallery.threshold());
+        assertEquals(-1, gallery.nearest(new float[]{5000f, 0f, 0f}));
+        assertEquals(2, gallery.nearest(new float[]{50f, 0.5f, 0.015f}));
+    }
+
+    @Test
+    void nearest_wrongDimensions_throws() {
+        QuantizedGallery gallery = QuantizedGallery.build(PROJECTIONS, LABELS, QuantizedGallery.Precision.FP16);
+        assertThrows(IllegalArgumentException.class, () -> gallery.nearest(new float[]{1f, 2f}));
+    }
+
+    @Test
+    void nearest_noisyQueries_matchFullPrecisionSearch() {
+        Random random = new Random(42);
+        double[][] projections = randomProjections(100, 32, random);
+        int[] labels = new int[projections.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i;
+        }
+
+        for (QuantizedGallery.Precision precision : QuantizedGallery.Precision.values()) {
+            QuantizedGallery gallery = QuantizedGallery.build(projections, labels, precision);
+            for (int i = 0; i < projections.length; i++) {
+                float[] query = toFloats(projections[i]);
+                for (int d = 0; d < query.length; d++) {
+                    query[d] += (float) (random.nextGaussian() * 0.01 * Math.abs(query[d]));
+                }
+                assertEquals(exactNearest(projections, query), gallery.nearest(query), precision + " row " + i);
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // half float conversion
+    // -----------------------------------------------------------------------
+
+    @Test
+    void halfFloat_roundTripsExactValues() {
+        for (float value : new float[]{0f, 1f, -1f, 0.5f, -0.25f, 2048f}) {
+            assertEquals(value, QuantizedGallery.halfToFloat(QuantizedGallery.floatToHalf(value) & 0xffff));
+        }
+    }
+
+    @Test
+    void halfFloat_roundTripKeepsRelativePrecision() {
+        float value = 0.123456f;
+        float roundTrip = QuantizedGallery.halfToFloat(QuantizedGallery.floatToHalf(value) & 0xffff);
+        assertEquals(value, roundTrip, value / 1024);
+    }
+
+    @Test
+    void halfFloat_overflowBecomesInfinity() {
+        assertEquals(Float.POSITIVE_INFINITY, QuantizedGallery.halfToFloat(QuantizedGallery.floatToHalf(70000f) & 0xffff));
+    }
+
+    private static QuantizedGallery projectingGallery(QuantizedGallery.Precision precision) {
+        return QuantizedGallery.build(PROJECTIONS, LABELS, precision,
+                new float[]{10f, 20f}, new float[]{1f, 0f, 2f, 0f, 1f, -1f}, Double.MAX_VALUE);
+    }
+
+    private static QuantizedGallery randomGallery(int size, int dimensions, QuantizedGallery.Precision precision,
+                                                  Random random) {
+        return QuantizedGallery.build(randomProjections(size, dimensions, random), new int[size], precision);
+    }
+
+    private static double[][] randomProjections(int size, int dimensions, Random random) {
+        double[][] projections = new double[size][dimensions];
+        for (int i = 0; i < size; i++) {
+            for (int d = 0; d < dimensions; d++) {
+                // eigen components shrink with their index, like real Eigenface projections
+                projections[i][d] = random.nextGaussian() * 1000 / (d + 1);
+            }
+        }
+        return projections;
+    }
+
+    private static int exactNearest(double[][] projections, float[] query) {
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < projections.length; i++) {
+            double distance = 0;
+            for (int d = 0; d < query.length; d++) {
+                double diff = query[d] - projections[i][d];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static float[] toFloats(double[] values) {
+        float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (float) values[i];
+        }
+        return result;
+    }
+}
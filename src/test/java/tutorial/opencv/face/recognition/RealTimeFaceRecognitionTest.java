@@ -3,11 +3,16 @@ package tutorial.opencv.face.recognition;
 import org.junit.jupiter.api.Test;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.face.EigenFaceRecognizer;
 import org.opencv.face.FaceRecognizer;
+import org.opencv.face.LBPHFaceRecognizer;
 import org.opencv.imgcodecs.Imgcodecs;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -204,4 +209,172 @@ class RealTimeFaceRecognitionTest {
         Set<String> knownNames = new java.util.HashSet<>(recognizer.personNames.values());
         assertTrue(knownNames.contains(name), "Predicted name '" + name + "' is not a known person");
     }
-}
\ No newline at end of file
+
+    // -----------------------------------------------------------------------
+    // quantized gallery  (requires OpenCV + training and test images)
+    // -----------------------------------------------------------------------
+
+    @Test
+    void quantizeGallery_int8_holdsOneEntryPerTrainingImage() {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        FaceRecognizer faceRecognizer = recognizer.trainFaceRecognizer();
+
+        QuantizedGallery gallery = recognizer.quantizeGallery(faceRecognizer, QuantizedGallery.Precision.INT8);
+        assertEquals(recognizer.images.size(), gallery.size());
+        assertEquals(125 * 150, gallery.pixels());
+        assertTrue(gallery.gallerySizeInBytes() < gallery.fullPrecisionGallerySizeInBytes());
+        assertTrue(gallery.sizeInBytes() < gallery.fullPrecisionSizeInBytes());
+    }
+
+    @Test
+    void quantizeGallery_lbphRecognizer_throws() {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        assertThrows(IllegalArgumentException.class,
+                () -> recognizer.quantizeGallery(LBPHFaceRecognizer.create(), QuantizedGallery.Precision.INT8));
+    }
+
+    @Test
+    void predict_withQuantizedGallery_matchesRecognizerWithoutNeedingIt() throws Exception {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        FaceRecognizer faceRecognizer = recognizer.trainFaceRecognizer();
+        QuantizedGallery gallery = recognizer.quantizeGallery(faceRecognizer, QuantizedGallery.Precision.FP16);
+
+        List<Mat> testImages = new ArrayList<>();
+        List<String> expectedNames = new ArrayList<>();
+        for (File testFile : new File("src/main/resources/images/test").listFiles(RealTimeFaceRecognition.IMG_FILTER)) {
+            Mat testImage = Imgcodecs.imread(testFile.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+            int[] label = new int[1];
+            double[] confidence = new double[1];
+            faceRecognizer.predict(testImage, label, confidence);
+            testImages.add(testImage);
+            expectedNames.add(nameOfLabel(label[0]));
+        }
+
+        // the gallery carries its own projection model, so the recognizer can go
+        faceRecognizer = null;
+        for (int i = 0; i < testImages.size(); i++) {
+            assertEquals(expectedNames.get(i), recognizer.predict(gallery, testImages.get(i)));
+        }
+    }
+
+    @Test
+    void evaluateQuantization_bothPrecisions_loseNoAccuracyOnTestImages() {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        FaceRecognizer faceRecognizer = recognizer.trainFaceRecognizer();
+
+        for (QuantizedGallery.Precision precision : QuantizedGallery.Precision.values()) {
+            QuantizedGallery gallery = recognizer.quantizeGallery(faceRecognizer, precision);
+            QuantizationReport report = recognizer.evaluateQuantization(faceRecognizer, gallery);
+
+            assertEquals(3, report.getTestImages());
+            assertEquals(1.0, report.getAgreement(), precision.name());
+            assertTrue(report.getAccuracyLoss() <= 0, precision.name());
+            assertTrue(report.getGalleryCompressionRatio() > 2.5, precision.name());
+            assertTrue(report.getModelCompressionRatio() > 1.9, precision.name());
+        }
+    }
+
+    @Test
+    void evaluateQuantization_finiteThreshold_appliesSameRuleToBothSides() {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        recognizer.trainFaceRecognizer();
+
+        // 6-wasin_6 is ~2143 and 6-wasin_4 ~2907 away from their nearest training image
+        EigenFaceRecognizer faceRecognizer = EigenFaceRecognizer.create(0, 2500);
+        faceRecognizer.train(new ArrayList<>(recognizer.images.values()), trainingLabels());
+
+        for (QuantizedGallery.Precision precision : QuantizedGallery.Precision.values()) {
+            QuantizedGallery gallery = recognizer.quantizeGallery(faceRecognizer, precision);
+            assertEquals(2500, gallery.threshold());
+
+            QuantizationReport report = recognizer.evaluateQuantization(faceRecognizer, gallery);
+            assertEquals(1.0, report.getAgreement(), precision.name());
+            assertTrue(report.getAccuracyLoss() <= 0, precision.name());
+        }
+    }
+
+    @Test
+    void predict_withGalleryFromAnotherInstance_resolvesNamesByLabel() {
+        RealTimeFaceRecognition training = new RealTimeFaceRecognition();
+        QuantizedGallery gallery = training.quantizeGallery(training.trainFaceRecognizer(),
+                QuantizedGallery.Precision.INT8);
+
+        File trainingImg = new File("src/main/resources/images/training/8-gabi_1.png");
+        Mat testImage = Imgcodecs.imread(trainingImg.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+
+        assertEquals("gabi", new RealTimeFaceRecognition().predict(gallery, testImage));
+    }
+
+    @Test
+    void evaluateQuantization_lbphRecognizer_throws() {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        QuantizedGallery gallery = recognizer.quantizeGallery(recognizer.trainFaceRecognizer(),
+                QuantizedGallery.Precision.INT8);
+        assertThrows(IllegalArgumentException.class,
+                () -> recognizer.evaluateQuantization(LBPHFaceRecognizer.create(), gallery));
+    }
+
+    @Test
+    void evaluateQuantization_galleryFromOtherRecognizer_throws() {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        FaceRecognizer faceRecognizer = recognizer.trainFaceRecognizer();
+
+        EigenFaceRecognizer smaller = EigenFaceRecognizer.create(3);
+        smaller.train(new ArrayList<>(recognizer.images.values()), trainingLabels());
+        QuantizedGallery gallery = recognizer.quantizeGallery(smaller, QuantizedGallery.Precision.INT8);
+
+        assertThrows(IllegalArgumentException.class, () -> recognizer.evaluateQuantization(faceRecognizer, gallery));
+    }
+
+    // -----------------------------------------------------------------------
+    // sharded recognizer  (requires OpenCV + training images on disk)
+    // -----------------------------------------------------------------------
+
+    @Test
+    void trainShardedFaceRecognizer_populatesLabelNames() {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        try (ShardedFaceRecognizer sharded = recognizer.trainShardedFaceRecognizer(2, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            assertEquals(2, sharded.getShardCount());
+            assertEquals("andrew", recognizer.labelNames.get(1));
+        }
+    }
+
+    @Test
+    void predict_withShardedRecognizer_matchesSingleRecognizerOnTestImages() {
+        RealTimeFaceRecognition recognizer = new RealTimeFaceRecognition();
+        recognizer.trainFaceRecognizer();
+        LBPHFaceRecognizer single = LBPHFaceRecognizer.create();
+        single.train(new ArrayList<>(recognizer.images.values()), trainingLabels());
+
+        try (ShardedFaceRecognizer sharded = recognizer.trainShardedFaceRecognizer(3, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            for (File testFile : new File("src/main/resources/images/test").listFiles(RealTimeFaceRecognition.IMG_FILTER)) {
+                Mat testImage = Imgcodecs.imread(testFile.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+                int[] label = new int[1];
+                double[] confidence = new double[1];
+                single.predict(testImage, label, confidence);
+
+                assertEquals(nameOfLabel(label[0]), recognizer.predict(sharded, testImage), testFile.getName());
+            }
+        }
+    }
+
+    private static String nameOfLabel(int label) {
+        for (File imageFile : new File("src/main/resources/images/training").listFiles(RealTimeFaceRecognition.IMG_FILTER)) {
+            if (RealTimeFaceRecognition.parseLabel(imageFile.getName()) == label) {
+                return RealTimeFaceRecognition.parseName(imageFile.getName());
+            }
+        }
+        return null;
+    }
+
+    private static Mat trainingLabels() {
+        MatOfInt labels = new MatOfInt();
+        List<Integer> values = new ArrayList<>();
+        File[] imageFiles = new File("src/main/resources/images/training").listFiles(RealTimeFaceRecognition.IMG_FILTER);
+        for (File imageFile : imageFiles) {
+            values.add(RealTimeFaceRecognition.parseLabel(imageFile.getName()));
+        }
+        labels.fromList(values);
+        return labels;
+    }
+}
@@ -0,0 +1,84 @@
+package tutorial.opencv.face.recognition;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for ShardWorker.
+ *
+ * Loading ShardWorker loads the OpenCV native library through its static initializer.
+ */
+class ShardWorkerTest {
+
+    private static final String TRAINING_DIR = new File("src/main/resources/images/training").getAbsolutePath();
+
+    @Test
+    void parseIdentities_groupsPathsByLabel() {
+        Map<Integer, List<File>> identities = ShardWorker.parseIdentities(
+                Arrays.asList("1\t/a/1-x_0.png", "2\t/a/2-y_0.png", "1\t/a/1-x_1.png"));
+        assertEquals(2, identities.size());
+        assertEquals(Arrays.asList(new File("/a/1-x_0.png"), new File("/a/1-x_1.png")), identities.get(1));
+    }
+
+    @Test
+    void handle_unknownRequest_throws() {
+        ShardedFaceRecognizer.InProcessShard shard = new ShardedFaceRecognizer.InProcessShard();
+        assertThrows(IllegalArgumentException.class,
+                () -> ShardWorker.handle("HELLO", null, Collections.emptyList(), shard));
+    }
+
+    @Test
+    void handle_prepareAndCommit_servesModel() {
+        ShardedFaceRecognizer.InProcessShard shard = new ShardedFaceRecognizer.InProcessShard();
+        List<String> body = Arrays.asList("1\t" + TRAINING_DIR + "/1-andrew_1.png", "8\t" + TRAINING_DIR + "/8-gabi_1.png");
+
+        assertEquals(ShardWorker.OK, ShardWorker.handle("PREPARE", "2", body, shard));
+        assertNull(shard.recognizer());
+        assertEquals(ShardWorker.OK, ShardWorker.handle("COMMIT", null, Collections.emptyList(), shard));
+        assertNotNull(shard.recognizer());
+    }
+
+    @Test
+    void handle_rollback_restoresPreviousModel() {
+        ShardedFaceRecognizer.InProcessShard shard = new ShardedFaceRecognizer.InProcessShard();
+        ShardWorker.handle("PREPARE", "1", Collections.singletonList("1\t" + TRAINING_DIR + "/1-andrew_1.png"), shard);
+        ShardWorker.handle("COMMIT", null, Collections.emptyList(), shard);
+        Object committed = shard.recognizer();
+
+        ShardWorker.handle("PREPARE", "1", Collections.singletonList("8\t" + TRAINING_DIR + "/8-gabi_1.png"), shard);
+        ShardWorker.handle("COMMIT", null, Collections.emptyList(), shard);
+        assertNotSame(committed, shard.recognizer());
+
+        assertEquals(ShardWorker.OK, ShardWorker.handle("ROLLBACK", null, Collections.emptyList(), shard));
+        assertSame(committed, shard.recognizer());
+    }
+
+    @Test
+    void readBody_prepare_consumesWholeBody() throws Exception {
+        BufferedReader requests = new BufferedReader(new StringReader(
+                "1\t" + TRAINING_DIR + "/missing.png\n2\t" + TRAINING_DIR + "/2-aree_3.png\n2 ABORT\n"));
+
+        List<String> body = ShardWorker.readBody("PREPARE", "2", requests);
+        assertEquals(2, body.size());
+        assertEquals("2 ABORT", requests.readLine());
+
+        ShardedFaceRecognizer.InProcessShard shard = new ShardedFaceRecognizer.InProcessShard();
+        assertThrows(IllegalArgumentException.class, () -> ShardWorker.handle("PREPARE", "2", body, shard));
+    }
+
+    @Test
+    void readBody_otherRequests_readNothing() throws Exception {
+        BufferedReader requests = new BufferedReader(new StringReader("2 ABORT\n"));
+        assertTrue(ShardWorker.readBody("COMMIT", null, requests).isEmpty());
+        assertEquals("2 ABORT", requests.readLine());
+    }
+}
@@ -0,0 +1,331 @@
+package tutorial.opencv.face.recognition;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.opencv_java;
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.face.FaceRecognizer;
+import org.opencv.face.LBPHFaceRecognizer;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for ShardedFaceRecognizer.
+ *
+ * The partitioning tests only need the JVM; the training and prediction tests load the
+ * OpenCV native library themselves and use the images in images/training and images/test.
+ */
+class ShardedFaceRecognizerTest {
+
+    private static final File TRAINING_DIR = new File("src/main/resources/images/training");
+    private static final File TEST_DIR = new File("src/main/resources/images/test");
+
+    // -----------------------------------------------------------------------
+    // construction and partitioning
+    // -----------------------------------------------------------------------
+
+    @Test
+    void constructor_zeroShards_throws() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ShardedFaceRecognizer(0, ShardedFaceRecognizer.Mode.IN_PROCESS));
+    }
+
+    @Test
+    void constructor_workerClassPathWithoutProject_failsWithClassPath() {
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> new ShardedFaceRecognizer(1, ShardedFaceRecognizer.Mode.WORKER_PROCESSES, "/no/such/classes"));
+        assertTrue(e.getMessage().contains("/no/such/classes"), e.getMessage());
+    }
+
+    @Test
+    void shardOf_isStableAndInRange() {
+        try (ShardedFaceRecognizer recognizer = new ShardedFaceRecognizer(3, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            for (int label = -10; label < 50; label++) {
+                int shard = recognizer.shardOf(label);
+                assertTrue(shard >= 0 && shard < 3);
+                assertEquals(shard, recognizer.shardOf(label));
+            }
+        }
+    }
+
+    @Test
+    void shardOf_spreadsConsecutiveLabels() {
+        try (ShardedFaceRecognizer recognizer = new ShardedFaceRecognizer(2, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            assertNotEquals(recognizer.shardOf(1), recognizer.shardOf(2));
+        }
+    }
+
+    @Test
+    void predict_beforeTraining_returnsNull() {
+        try (ShardedFaceRecognizer recognizer = new ShardedFaceRecognizer(2, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            assertNull(recognizer.predict(null));
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // train / predict  (requires OpenCV + images on disk)
+    // -----------------------------------------------------------------------
+
+    @Test
+    void train_spreadsIdentitiesOverShards() {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            assertEquals(4, recognizer.getIdentityCount(0));
+            assertEquals(4, recognizer.getIdentityCount(1));
+        }
+    }
+
+    @Test
+    void predict_testImages_matchSingleRecognizer() {
+        FaceRecognizer single = singleRecognizer();
+        for (int shardCount = 1; shardCount <= 4; shardCount++) {
+            try (ShardedFaceRecognizer recognizer = trainedRecognizer(shardCount, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+                assertMatchesSingleRecognizer(single, recognizer);
+            }
+        }
+    }
+
+    @Test
+    void predict_workerProcesses_matchSingleRecognizer() {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.WORKER_PROCESSES)) {
+            assertMatchesSingleRecognizer(singleRecognizer(), recognizer);
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // update / remove  (requires OpenCV + images on disk)
+    // -----------------------------------------------------------------------
+
+    @Test
+    void update_newIdentity_retrainsOnlyOwningShard() {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            int owner = recognizer.shardOf(9);
+            FaceRecognizer ownerModel = model(recognizer, owner);
+            FaceRecognizer otherModel = model(recognizer, 1 - owner);
+
+            recognizer.update(9, Collections.singletonList(new File(TRAINING_DIR, "1-andrew_1.png")));
+
+            assertEquals(5, recognizer.getIdentityCount(owner));
+            assertEquals(4, recognizer.getIdentityCount(1 - owner));
+            assertNotSame(ownerModel, model(recognizer, owner));
+            assertSame(otherModel, model(recognizer, 1 - owner));
+        }
+    }
+
+    @Test
+    void remove_identityIsNoLongerPredicted() {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            recognizer.remove(8);
+            assertEquals(3, recognizer.getIdentityCount(recognizer.shardOf(8)));
+            assertNotEquals(8, recognizer.predict(load(new File(TRAINING_DIR, "8-gabi_1.png"))).getLabel());
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // failed training  (requires OpenCV + images on disk)
+    // -----------------------------------------------------------------------
+
+    @Test
+    void update_unreadableImage_keepsShardUnchanged() {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            int owner = recognizer.shardOf(9);
+            FaceRecognizer ownerModel = model(recognizer, owner);
+
+            assertThrows(IllegalArgumentException.class,
+                    () -> recognizer.update(9, Collections.singletonList(new File(TRAINING_DIR, "missing.png"))));
+
+            assertEquals(4, recognizer.getIdentityCount(owner));
+            assertSame(ownerModel, model(recognizer, owner));
+        }
+    }
+
+    @Test
+    void train_unreadableImage_keepsAllShardsUnchanged() {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.IN_PROCESS)) {
+            FaceRecognizer firstModel = model(recognizer, 0);
+            FaceRecognizer secondModel = model(recognizer, 1);
+
+            // only one shard fails; the other one must not switch to its new model either
+            List<File> imageFiles = Arrays.asList(new File(TRAINING_DIR, "1-andrew_1.png"),
+                    new File(TRAINING_DIR, "missing.png"));
+            assertThrows(IllegalArgumentException.class, () -> recognizer.train(imageFiles, new int[]{1, 2}));
+
+            assertEquals(4, recognizer.getIdentityCount(0));
+            assertEquals(4, recognizer.getIdentityCount(1));
+            assertSame(firstModel, model(recognizer, 0));
+            assertSame(secondModel, model(recognizer, 1));
+        }
+    }
+
+    @Test
+    void train_commitFails_rollsBackCommittedShards() {
+        Loader.load(opencv_java.class);
+        ShardedFaceRecognizer.InProcessShard first = new ShardedFaceRecognizer.InProcessShard();
+        FailingCommitShard second = new FailingCommitShard();
+        try (ShardedFaceRecognizer recognizer = new ShardedFaceRecognizer(first, second)) {
+            File[] imageFiles = trainingFiles();
+            recognizer.train(Arrays.asList(imageFiles), labels(imageFiles));
+            FaceRecognizer firstModel = first.recognizer();
+            FaceRecognizer secondModel = second.recognizer();
+
+            // the first shard commits before the second one fails
+            second.failCommit = true;
+            List<File> changed = Arrays.asList(new File(TRAINING_DIR, "2-aree_3.png"),
+                    new File(TRAINING_DIR, "1-andrew_1.png"));
+            assertThrows(IllegalStateException.class, () -> recognizer.train(changed, new int[]{2, 1}));
+
+            assertSame(firstModel, first.recognizer());
+            assertSame(secondModel, second.recognizer());
+            assertEquals(4, recognizer.getIdentityCount(0));
+            assertEquals(4, recognizer.getIdentityCount(1));
+        }
+    }
+
+    @Test
+    void update_workerProcessFails_keepsServingPreviousModel() {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.WORKER_PROCESSES)) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> recognizer.update(8, Collections.singletonList(new File(TRAINING_DIR, "missing.png"))));
+
+            assertEquals(4, recognizer.getIdentityCount(recognizer.shardOf(8)));
+            assertEquals(8, recognizer.predict(load(new File(TRAINING_DIR, "8-gabi_1.png"))).getLabel());
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // worker processes  (requires OpenCV + images on disk)
+    // -----------------------------------------------------------------------
+
+    @Test
+    void predict_workerProcesses_answersWhileUpdateIsTraining() throws Exception {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.WORKER_PROCESSES)) {
+            ShardedFaceRecognizer.WorkerProcessShard owner =
+                    (ShardedFaceRecognizer.WorkerProcessShard) recognizer.shard(recognizer.shardOf(9));
+            // enough copies that training takes far longer than one query
+            List<File> imageFiles = Collections.nCopies(1000, new File(TRAINING_DIR, "1-andrew_1.png"));
+            Thread update = new Thread(() -> recognizer.update(9, imageFiles));
+            update.start();
+            while (!owner.isPreparing()) {
+                Thread.sleep(1);
+            }
+
+            ShardedFaceRecognizer.Prediction prediction = recognizer.predict(load(new File(TRAINING_DIR, "8-gabi_1.png")));
+            assertTrue(owner.isPreparing(), "the query should not wait for the update");
+            assertEquals(8, prediction.getLabel());
+
+            update.join();
+            assertEquals(5, recognizer.getIdentityCount(recognizer.shardOf(9)));
+        }
+    }
+
+    @Test
+    void predict_workerKilled_restartsWithCommittedIdentities() throws Exception {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.WORKER_PROCESSES)) {
+            ShardedFaceRecognizer.WorkerProcessShard owner =
+                    (ShardedFaceRecognizer.WorkerProcessShard) recognizer.shard(recognizer.shardOf(8));
+            Process killed = owner.process();
+            killed.destroyForcibly().waitFor();
+
+            assertEquals(8, recognizer.predict(load(new File(TRAINING_DIR, "8-gabi_1.png"))).getLabel());
+            assertNotSame(killed, owner.process());
+            assertMatchesSingleRecognizer(singleRecognizer(), recognizer);
+        }
+    }
+
+    @Test
+    void update_workerKilled_keepsCommittedIdentities() throws Exception {
+        try (ShardedFaceRecognizer recognizer = trainedRecognizer(2, ShardedFaceRecognizer.Mode.WORKER_PROCESSES)) {
+            int owner = recognizer.shardOf(8);
+            ((ShardedFaceRecognizer.WorkerProcessShard) recognizer.shard(owner)).process().destroyForcibly().waitFor();
+
+            assertThrows(IllegalStateException.class,
+                    () -> recognizer.update(8, Collections.singletonList(new File(TRAINING_DIR, "1-andrew_1.png"))));
+
+            assertEquals(4, recognizer.getIdentityCount(owner));
+            assertEquals(8, recognizer.predict(load(new File(TRAINING_DIR, "8-gabi_1.png"))).getLabel());
+        }
+    }
+
+    /** An in-process shard whose commit can be made to fail. */
+    private static class FailingCommitShard extends ShardedFaceRecognizer.InProcessShard {
+
+        private boolean failCommit;
+
+        @Override
+        public synchronized void commit() {
+            if (failCommit) {
+                throw new IllegalStateException("commit failed");
+            }
+            super.commit();
+        }
+    }
+
+    private static void assertMatchesSingleRecognizer(FaceRecognizer single, ShardedFaceRecognizer sharded) {
+        File[] testFiles = TEST_DIR.listFiles(RealTimeFaceRecognition.IMG_FILTER);
+        assertTrue(testFiles.length > 0);
+
+        for (File testFile : testFiles) {
+            Mat testImage = load(testFile);
+            int[] label = new int[1];
+            double[] confidence = new double[1];
+            single.predict(testImage, label, confidence);
+
+            ShardedFaceRecognizer.Prediction prediction = sharded.predict(testImage);
+            assertEquals(label[0], prediction.getLabel(), testFile.getName());
+            assertEquals(confidence[0], prediction.getConfidence(), 1e-6, testFile.getName());
+        }
+    }
+
+    private static FaceRecognizer model(ShardedFaceRecognizer recognizer, int shard) {
+        return ((ShardedFaceRecognizer.InProcessShard) recognizer.shard(shard)).recognizer();
+    }
+
+    private static FaceRecognizer singleRecognizer() {
+        File[] imageFiles = trainingFiles();
+        List<Mat> images = new ArrayList<>();
+        List<Integer> labels = new ArrayList<>();
+        for (File imageFile : imageFiles) {
+            images.add(load(imageFile));
+            labels.add(RealTimeFaceRecognition.parseLabel(imageFile.getName()));
+        }
+
+        MatOfInt labelsMat = new MatOfInt();
+        labelsMat.fromList(labels);
+        FaceRecognizer recognizer = LBPHFaceRecognizer.create();
+        recognizer.train(images, labelsMat);
+        return recognizer;
+    }
+
+    private static ShardedFaceRecognizer trainedRecognizer(int shardCount, ShardedFaceRecognizer.Mode mode) {
+        Loader.load(opencv_java.class);
+
+        File[] imageFiles = trainingFiles();
+        ShardedFaceRecognizer recognizer = new ShardedFaceRecognizer(shardCount, mode);
+        recognizer.train(Arrays.asList(imageFiles), labels(imageFiles));
+        return recognizer;
+    }
+
+    private static int[] labels(File[] imageFiles) {
+        int[] labels = new int[imageFiles.length];
+        for (int i = 0; i < imageFiles.length; i++) {
+            labels[i] = RealTimeFaceRecognition.parseLabel(imageFiles[i].getName());
+        }
+        return labels;
+    }
+
+    private static File[] trainingFiles() {
+        return TRAINING_DIR.listFiles(RealTimeFaceRecognition.IMG_FILTER);
+    }
+
+    private static Mat load(File imageFile) {
+        Loader.load(opencv_java.class);
+        return Imgcodecs.imread(imageFile.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+    }
+}